@@ -0,0 +1,188 @@
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Limits how many DAO operations of one kind (reads or writes) may use
+ * the connection at the same time.
+ *
+ * Callers which can not get a slot immediately wait in a bounded queue
+ * for at most maxWaitMillis. If the queue is full or the wait is over,
+ * operation fails fast with {@link SQLTransientException}.
+ *
+ * Every admitted operation gets a deadline of queryTimeoutSeconds counted
+ * from the moment it asked for a slot, so time spent in the queue counts too.
+ * Each statement of the operation gets only what is left of it.
+ *
+ * @see ReflectionJdbcDaoImpl#setReadLimiter(AdmissionLimiter)
+ * @see ReflectionJdbcDaoImpl#setWriteLimiter(AdmissionLimiter)
+ */
+public class AdmissionLimiter {
+
+    /**
+     * Lets every operation through and sets no query timeout.
+     */
+    public static final AdmissionLimiter UNLIMITED = new AdmissionLimiter();
+
+    private final Semaphore permits;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+    private final int queryTimeoutSeconds;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxConcurrent how many operations may run at the same time
+     * @param maxQueued how many operations may wait for a slot, 0 to reject at once
+     * @param maxWaitMillis how long an operation may wait for a slot
+     * @param queryTimeoutSeconds timeout for the whole operation, 0 for no timeout
+     *                            (see {@link java.sql.Statement#setQueryTimeout(int)})
+     */
+    public AdmissionLimiter(int maxConcurrent, int maxQueued, long maxWaitMillis, int queryTimeoutSeconds) {
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent should be positive, got " + maxConcurrent);
+        }
+        if (maxQueued < 0 || maxWaitMillis < 0 || queryTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("maxQueued, maxWaitMillis and queryTimeoutSeconds " +
+                    "should not be negative");
+        }
+
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+    }
+
+    private AdmissionLimiter() {
+        this.permits = null;
+        this.maxQueued = 0;
+        this.maxWaitMillis = 0;
+        this.queryTimeoutSeconds = 0;
+    }
+
+    /**
+     * @return how many operations were rejected so far.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Takes a slot or throws. Every returned permit must be released with {@link Permit#release()}.
+     *
+     * Fast path uses timed tryAcquire, because untimed one ignores fairness
+     * and would let new callers overtake those already waiting in the queue.
+     *
+     * @throws SQLTransientException if there is no free slot and queue is full or wait is over
+     */
+    Permit acquire() throws SQLTransientException {
+        long start = System.nanoTime();
+        if (permits == null) {
+            return new Permit(start);
+        }
+
+        try {
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                return new Permit(start);
+            }
+
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.incrementAndGet();
+                throw new SQLTransientException("too many operations are waiting for connection");
+            }
+
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+            } finally {
+                queued.decrementAndGet();
+            }
+
+            if (!acquired) {
+                rejected.incrementAndGet();
+                throw new SQLTransientException("waited for connection more than " + maxWaitMillis + " ms");
+            }
+            return new Permit(start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            throw new SQLTransientException("interrupted while waiting for connection", e);
+        }
+    }
+
+    /**
+     * A slot taken by one operation together with its deadline.
+     */
+    class Permit {
+
+        private final long deadlineNanos;
+
+        private Permit(long startNanos) {
+            this.deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(queryTimeoutSeconds);
+        }
+
+        /**
+         * @return timeout for the next statement of the operation: remaining whole seconds
+         * rounded up, 0 if there is no timeout.
+         * @throws SQLTimeoutException if deadline of the operation has passed
+         */
+        int getQueryTimeoutSeconds() throws SQLTimeoutException {
+            if (queryTimeoutSeconds == 0) {
+                return 0;
+            }
+
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (remainingNanos <= 0) {
+                throw new SQLTimeoutException("operation did not finish in " + queryTimeoutSeconds + " s");
+            }
+            return (int) Math.max(1, (remainingNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * Takes given lock for the operation, waiting no longer than a slot
+         * is waited for and not past the deadline.
+         *
+         * @throws SQLTransientException if lock was not taken in time
+         */
+        void lock(Lock lock) throws SQLTransientException {
+            if (permits == null) {
+                lock.lock();
+                return;
+            }
+
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            if (queryTimeoutSeconds > 0) {
+                waitNanos = Math.min(waitNanos, deadlineNanos - System.nanoTime());
+            }
+
+            try {
+                if (lock.tryLock(Math.max(0, waitNanos), TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected.incrementAndGet();
+                throw new SQLTransientException("interrupted while waiting for lock", e);
+            }
+            rejected.incrementAndGet();
+            throw new SQLTransientException("waited for lock more than " +
+                    TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms");
+        }
+
+        void release() {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * One entry of the change feed returned by {@link ReflectionJdbcDao#selectChangedSince(long)}.
+ *
+ * @param <T> type of stored objects
+ */
+public class Change<T> {
+
+    private final long version;
+    private final T object;
+    private final boolean deleted;
+
+    public Change(long version, T object, boolean deleted) {
+        this.version = version;
+        this.object = object;
+        this.deleted = deleted;
+    }
+
+    /**
+     * @return version of this change. Pass the greatest seen version
+     * to the next {@link ReflectionJdbcDao#selectChangedSince(long)} call.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return stored object if it was inserted or updated,
+     * or the key it was deleted by if {@link Change#isDeleted()}.
+     */
+    public T getObject() {
+        return object;
+    }
+
+    /**
+     * @return true if object was deleted.
+     */
+    public boolean isDeleted() {
+        return deleted;
+    }
+}
@@ -22,4 +22,20 @@ public @interface Entity {
      * @return name of table or empty line if none specified.
      */
     String tableName() default "";
+
+    /**
+     * If set, every insert and update stamps the record with a new
+     * monotonically increasing version and every delete leaves a tombstone,
+     * so changes can be read incrementally with
+     * {@link ReflectionJdbcDao#selectChangedSince(long)}.
+     *
+     * Versions are taken from a database sequence, and every write locks
+     * the table until its transaction ends, so versions are committed in order.
+     *
+     * Table has to be created by DAO with this flag already set,
+     * existing tables are not altered.
+     *
+     * @return true if changes of this class should be tracked.
+     */
+    boolean versioned() default false;
 }
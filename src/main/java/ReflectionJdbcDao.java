@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by equi on 03.05.16.
@@ -54,4 +55,44 @@ public interface ReflectionJdbcDao<T> {
      */
     List<T> selectAll() throws SQLException, IOException, ClassNotFoundException;
 
+    /**
+     * Checking whether object exists in database.
+     * Only key columns are read, stored object is not transferred.
+     *
+     * @param key identifies the object to look for.
+     * @return true if there is at least one record with such key.
+     */
+    boolean existsByKey(T key) throws SQLException, IllegalAccessException;
+
+    /**
+     * Counting all records in database.
+     *
+     * @return number of stored records.
+     */
+    long count() throws SQLException;
+
+    /**
+     * Retrieving keys of all objects from database.
+     * Every key is a list of values of @Index fields in order of their declaration.
+     *
+     * Rows are read lazily, so returned stream must be closed
+     * (e.g. with try-with-resources) to release the statement.
+     *
+     * @return stream of keys of all objects from database.
+     */
+    Stream<List<Object>> selectAllKeys() throws SQLException;
+
+    /**
+     * Retrieving all changes made after given version, ordered by version.
+     * Works only for classes registered with {@link Entity#versioned()} set.
+     *
+     * Only the latest state of every record is returned, so intermediate
+     * updates of the same object are collapsed into one change.
+     * Rows are read lazily, so returned stream must be closed.
+     *
+     * @param version the greatest version already seen, 0 to read everything.
+     * @return stream of changes with version greater than given one.
+     */
+    Stream<Change<T>> selectChangedSince(long version) throws SQLException;
+
 }
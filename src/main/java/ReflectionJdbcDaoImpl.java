@@ -1,3 +1,10 @@
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+
 import java.io.*;
 import java.lang.reflect.Field;
 import java.sql.Connection;
@@ -5,6 +12,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static com.google.common.base.CaseFormat.*;
 
@@ -21,6 +34,12 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
 
     private static final int STRING_MAX_LENGTH = 255; // VARCHAR boundary
     private static final String OBJECT_ITSELF_COLUMN = "object_itself";
+    private static final String ROW_VERSION_COLUMN = "row_version";
+    private static final String TOMBSTONES_TABLE_SUFFIX = "_tombstones";
+    private static final String SEQUENCE_SUFFIX = "_seq";
+    private static final String KEY_INDEX_SUFFIX = "_key";
+    private static final HashFunction FINGERPRINT_FUNCTION = Hashing.murmur3_128();
+    private static final int KEY_LOCK_STRIPES = 256;
 
     private static final Set<Class<?>> SUPPORTED_INDEX_TYPES = new HashSet<>(Arrays.asList(new Class<?>[] {
             int.class,
@@ -34,16 +53,48 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
     private Class<T> clazz;
 
     private String tableName;
+    private String tombstonesTableName;
+    private String sequenceName;
+    private boolean versioned;
 
     private Field[] allFields;
     private List<Field> indexedFields;
 
+    /**
+     * Fingerprints of the last loaded or stored encoding of objects by their key values.
+     * It is null unless {@link ReflectionJdbcDaoImpl#enableDirtyChecking(long)} was called.
+     */
+    private Cache<List<Object>, HashCode> fingerprints;
+
+    /**
+     * With dirty checking every write of a key holds its write lock from reading
+     * the fingerprint till storing the new one, so a fingerprint always matches
+     * what is in database. selectByKey takes read lock, so reads of a key run together.
+     * Locks are taken after an admission slot, waiting not longer than the slot
+     * is waited for, and the wait counts against the operation deadline.
+     */
+    private Striped<ReadWriteLock> keyLocks;
+    private final AtomicLong skippedUpdates = new AtomicLong();
+
+    private AdmissionLimiter readLimiter = AdmissionLimiter.UNLIMITED;
+    private AdmissionLimiter writeLimiter = AdmissionLimiter.UNLIMITED;
+
     private String createQueryTemplate;
     private String insertQueryTemplate;
     private String updateQueryTemplate;
     private String deleteQueryTemplate;
     private String selectQueryTemplate;
     private String selectAllQueryTemplate;
+    private String existsQueryTemplate;
+    private String countQueryTemplate;
+    private String selectAllKeysQueryTemplate;
+    private String createTombstonesQueryTemplate;
+    private String insertTombstoneQueryTemplate;
+    private String deleteTombstoneQueryTemplate;
+    private String selectChangedSinceQueryTemplate;
+    private String createSequenceQueryTemplate;
+    private String selectSequenceQueryTemplate;
+    private String lockTableQueryTemplate;
 
     /**
      * User must specify which connection to use.
@@ -55,6 +106,62 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
         indexedFields = new ArrayList<>();
     }
 
+    /**
+     * After this call {@link ReflectionJdbcDaoImpl#update(Object)} does nothing if
+     * serialized object is the same as the last one stored by insert or update,
+     * or loaded by selectByKey. Objects loaded by selectAll or selectChangedSince
+     * are not remembered.
+     *
+     * Only committed encodings are remembered: if connection is not in auto-commit
+     * mode (the caller manages the transaction and may roll it back), writes and
+     * reads of this DAO forget the fingerprint instead.
+     *
+     * Only fingerprints of encodings are kept, at most for maxTrackedObjects keys
+     * (least recently used are forgotten). Keys are expected to be unique and
+     * the table is expected to be changed only through this DAO,
+     * otherwise changes made elsewhere can be overwritten silently.
+     *
+     * @param maxTrackedObjects how many objects to remember
+     */
+    public void enableDirtyChecking(long maxTrackedObjects) {
+        keyLocks = Striped.readWriteLock(KEY_LOCK_STRIPES);
+        fingerprints = CacheBuilder.newBuilder()
+                .maximumSize(maxTrackedObjects)
+                .build();
+    }
+
+    /**
+     * @return how many updates were skipped because object did not change.
+     */
+    public long getSkippedUpdatesCount() {
+        return skippedUpdates.get();
+    }
+
+    /**
+     * Limits concurrent selectByKey, selectAll, existsByKey, count, selectAllKeys
+     * and selectChangedSince calls. Operations returning a stream hold their slot
+     * until the stream is closed.
+     *
+     * Rejected operations throw {@link java.sql.SQLTransientException}.
+     *
+     * @param readLimiter limiter to use, {@link AdmissionLimiter#UNLIMITED} by default
+     */
+    public void setReadLimiter(AdmissionLimiter readLimiter) {
+        this.readLimiter = readLimiter;
+    }
+
+    /**
+     * Limits concurrent insert, update and deleteByKey calls.
+     * Updates skipped by dirty checking usually do not take a slot.
+     *
+     * Rejected operations throw {@link java.sql.SQLTransientException}.
+     *
+     * @param writeLimiter limiter to use, {@link AdmissionLimiter#UNLIMITED} by default
+     */
+    public void setWriteLimiter(AdmissionLimiter writeLimiter) {
+        this.writeLimiter = writeLimiter;
+    }
+
     /**
      * {@inheritDoc}
      * @throws IllegalArgumentException
@@ -73,11 +180,26 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
      * {@inheritDoc}
      */
     public void insert(T object) throws SQLException, IllegalAccessException {
-        try (PreparedStatement pStatement = connection.prepareStatement(insertQueryTemplate)) {
-            insertKeyValues(pStatement, object, 1);
-            pStatement.setObject(1 + indexedFields.size(), serializeObject((Serializable) object));
+        byte[] bytes = serializeObject((Serializable) object);
+        AdmissionLimiter.Permit permit = writeLimiter.acquire();
+        try {
+            Lock keyLock = lockKey(object, permit, true);
+            try {
+                forgetFingerprint(object);
 
-            pStatement.execute();
+                runWrite(permit, () -> {
+                    try (PreparedStatement pStatement = prepareStatement(insertQueryTemplate, permit)) {
+                        insertKeyValues(pStatement, object, 1);
+                        pStatement.setObject(1 + indexedFields.size(), bytes);
+
+                        return pStatement.execute();
+                    }
+                }, inserted -> rememberFingerprint(object, bytes));
+            } finally {
+                unlock(keyLock);
+            }
+        } finally {
+            permit.release();
         }
     }
 
@@ -85,11 +207,41 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
      * {@inheritDoc}
      */
     public void update(T object) throws SQLException, IllegalAccessException {
-        try (PreparedStatement pStatement = connection.prepareStatement(updateQueryTemplate)) {
-            pStatement.setObject(1, serializeObject((Serializable) object));
-            insertKeyValues(pStatement, object, 2);
+        byte[] bytes = serializeObject((Serializable) object);
+        // writers forget fingerprint before changing a row, so a matching one
+        // can be trusted without taking a slot or a lock
+        if (isUnchanged(object, bytes)) {
+            skippedUpdates.incrementAndGet();
+            return;
+        }
 
-            pStatement.execute();
+        AdmissionLimiter.Permit permit = writeLimiter.acquire();
+        try {
+            Lock keyLock = lockKey(object, permit, true);
+            try {
+                if (isUnchanged(object, bytes)) {
+                    skippedUpdates.incrementAndGet();
+                    return;
+                }
+                forgetFingerprint(object);
+
+                runWrite(permit, () -> {
+                    try (PreparedStatement pStatement = prepareStatement(updateQueryTemplate, permit)) {
+                        pStatement.setObject(1, bytes);
+                        insertKeyValues(pStatement, object, 2);
+
+                        return pStatement.executeUpdate();
+                    }
+                }, updated -> {
+                    if (updated > 0) {
+                        rememberFingerprint(object, bytes);
+                    }
+                });
+            } finally {
+                unlock(keyLock);
+            }
+        } finally {
+            permit.release();
         }
     }
 
@@ -97,52 +249,363 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
      * {@inheritDoc}
      */
     public void deleteByKey(T key) throws SQLException, IllegalAccessException {
-        try (PreparedStatement pStatement = connection.prepareStatement(deleteQueryTemplate)) {
-            insertKeyValues(pStatement, key, 1);
+        AdmissionLimiter.Permit permit = writeLimiter.acquire();
+        try {
+            Lock keyLock = lockKey(key, permit, true);
+            try {
+                forgetFingerprint(key);
 
-            pStatement.execute();
+                runWrite(permit, () -> {
+                    int deleted;
+                    try (PreparedStatement pStatement = prepareStatement(deleteQueryTemplate, permit)) {
+                        insertKeyValues(pStatement, key, 1);
+
+                        deleted = pStatement.executeUpdate();
+                    }
+
+                    if (versioned && deleted > 0) {
+                        insertTombstone(key, permit);
+                    }
+                    return deleted;
+                }, null);
+            } finally {
+                unlock(keyLock);
+            }
+        } finally {
+            permit.release();
         }
     }
 
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("unchecked")
     public T selectByKey(T key) throws IOException, ClassNotFoundException, SQLException, IllegalAccessException {
-        try (PreparedStatement pStatement = connection.prepareStatement(selectQueryTemplate)) {
-            insertKeyValues(pStatement, key, 1);
-            ResultSet resultSet = pStatement.executeQuery();
+        AdmissionLimiter.Permit permit = readLimiter.acquire();
+        try {
+            Lock keyLock = lockKey(key, permit, false);
+            try (PreparedStatement pStatement = prepareStatement(selectQueryTemplate, permit)) {
+                // inside a transaction row may be uncommitted, so it is not remembered
+                boolean committed = fingerprints != null && connection.getAutoCommit();
+                insertKeyValues(pStatement, key, 1);
+                ResultSet resultSet = pStatement.executeQuery();
 
-            if (resultSet.next()) {
-                ByteArrayInputStream bais = new ByteArrayInputStream(resultSet.getBytes(1));
-                ObjectInputStream ois = new ObjectInputStream(bais);
-                return (T) ois.readObject();
-            } else {
-                return null;
+                if (resultSet.next()) {
+                    byte[] bytes = resultSet.getBytes(1);
+                    if (committed) {
+                        rememberFingerprint(key, bytes);
+                    }
+                    return deserializeObject(bytes);
+                } else {
+                    forgetFingerprint(key);
+                    return null;
+                }
+            } finally {
+                unlock(keyLock);
             }
+        } finally {
+            permit.release();
         }
     }
 
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("unchecked")
     public List<T> selectAll() throws IOException, SQLException, ClassNotFoundException {
-        try (PreparedStatement pStatement = connection.prepareStatement(selectAllQueryTemplate)) {
+        AdmissionLimiter.Permit permit = readLimiter.acquire();
+        try (PreparedStatement pStatement = prepareStatement(selectAllQueryTemplate, permit)) {
             ResultSet resultSet = pStatement.executeQuery();
 
             List<T> result = new ArrayList<>();
 
             while (resultSet.next()) {
-                ByteArrayInputStream bais = new ByteArrayInputStream(resultSet.getBytes(1));
-                ObjectInputStream ois = new ObjectInputStream(bais);
-                result.add((T) ois.readObject());
+                result.add(deserializeObject(resultSet.getBytes(1)));
             }
 
             return result;
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean existsByKey(T key) throws SQLException, IllegalAccessException {
+        AdmissionLimiter.Permit permit = readLimiter.acquire();
+        try (PreparedStatement pStatement = prepareStatement(existsQueryTemplate, permit)) {
+            insertKeyValues(pStatement, key, 1);
+            pStatement.setMaxRows(1);
+
+            try (ResultSet resultSet = pStatement.executeQuery()) {
+                return resultSet.next();
+            }
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long count() throws SQLException {
+        AdmissionLimiter.Permit permit = readLimiter.acquire();
+        try (PreparedStatement pStatement = prepareStatement(countQueryTemplate, permit);
+             ResultSet resultSet = pStatement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Stream<List<Object>> selectAllKeys() throws SQLException {
+        return streamQuery(selectAllKeysQueryTemplate, resultSet -> {
+            List<Object> key = new ArrayList<>(indexedFields.size());
+            for (int i = 1; i <= indexedFields.size(); i++) {
+                key.add(resultSet.getObject(i));
+            }
+            return key;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws UnsupportedOperationException if registered class is not versioned
+     */
+    public Stream<Change<T>> selectChangedSince(long version) throws SQLException {
+        if (!versioned) {
+            throw new UnsupportedOperationException("class '" + clazz.getName() + "' is not versioned");
+        }
+
+        return streamQuery(selectChangedSinceQueryTemplate, resultSet ->
+                new Change<>(resultSet.getLong(1), deserializeObject(resultSet.getBytes(2)), resultSet.getInt(3) != 0),
+                version, version);
+    }
+
+    /**
+     * Executes given query and lazily maps its rows.
+     * Statement is closed and read slot is released when returned stream is closed.
+     *
+     * Exceptions thrown while reading rows are wrapped into IllegalStateException
+     * because stream operations can not throw checked exceptions.
+     *
+     * @param query query to execute.
+     * @param mapper converts current row of result set into element of the stream.
+     * @param parameters values for '?' in query.
+     */
+    private <R> Stream<R> streamQuery(String query, RowMapper<R> mapper, Object... parameters) throws SQLException {
+        AdmissionLimiter.Permit permit = readLimiter.acquire();
+        PreparedStatement pStatement;
+        try {
+            pStatement = prepareStatement(query, permit);
+        } catch (SQLException e) {
+            permit.release();
+            throw e;
+        }
+
+        ResultSet resultSet;
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                pStatement.setObject(i + 1, parameters[i]);
+            }
+            resultSet = pStatement.executeQuery();
+        } catch (SQLException e) {
+            try {
+                pStatement.close();
+            } finally {
+                permit.release();
+            }
+            throw e;
+        }
+
+        Spliterator<R> spliterator = new Spliterators.AbstractSpliterator<R>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super R> action) {
+                R row;
+                try {
+                    if (!resultSet.next()) {
+                        return false;
+                    }
+                    row = mapper.map(resultSet);
+                } catch (Exception e) {
+                    throw new IllegalStateException("failed to read row from " + tableName, e);
+                }
+                action.accept(row);
+                return true;
+            }
+        };
+
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                pStatement.close();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                permit.release();
+            }
+        });
+    }
+
+    /**
+     * Prepares statement with what is left of the operation's query timeout.
+     *
+     * @throws java.sql.SQLTimeoutException if deadline of the operation has passed
+     */
+    private PreparedStatement prepareStatement(String query, AdmissionLimiter.Permit permit) throws SQLException {
+        int queryTimeoutSeconds = permit.getQueryTimeoutSeconds();
+        PreparedStatement pStatement = connection.prepareStatement(query);
+        if (queryTimeoutSeconds > 0) {
+            try {
+                pStatement.setQueryTimeout(queryTimeoutSeconds);
+            } catch (SQLException e) {
+                pStatement.close();
+                throw e;
+            }
+        }
+        return pStatement;
+    }
+
+    private interface RowMapper<R> {
+        R map(ResultSet resultSet) throws Exception;
+    }
+
+    /**
+     * Leaves the only tombstone for given key with a new version.
+     */
+    private void insertTombstone(T key, AdmissionLimiter.Permit permit) throws SQLException, IllegalAccessException {
+        try (PreparedStatement pStatement = prepareStatement(deleteTombstoneQueryTemplate, permit)) {
+            insertKeyValues(pStatement, key, 1);
+
+            pStatement.execute();
+        }
+
+        try (PreparedStatement pStatement = prepareStatement(insertTombstoneQueryTemplate, permit)) {
+            insertKeyValues(pStatement, key, 1);
+            pStatement.setObject(1 + indexedFields.size(), serializeObject((Serializable) key));
+
+            pStatement.execute();
+        }
+    }
+
+    /**
+     * Runs statements of one write operation. For versioned classes they run in one
+     * transaction which first locks the table, so a deleted row and its tombstone
+     * change together, and versions taken from the sequence are committed in the
+     * same order they were given (otherwise a reader of the change feed could
+     * see version v+1 before v and skip v forever).
+     *
+     * If connection is not in auto-commit mode, the caller's transaction is used
+     * and it is up to the caller to commit it.
+     *
+     * All writes synchronize on connection, so none of them runs inside a transaction
+     * opened here by another thread.
+     *
+     * @param onCommit called with the result only if the write is committed, may be null
+     */
+    private <R> R runWrite(AdmissionLimiter.Permit permit, WriteOperation<R> operation, CommitListener<R> onCommit)
+            throws SQLException, IllegalAccessException {
+        synchronized (connection) {
+            boolean autoCommit = connection.getAutoCommit();
+            if (!versioned) {
+                R result = operation.run();
+                if (autoCommit && onCommit != null) {
+                    onCommit.committed(result);
+                }
+                return result;
+            }
+
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+
+            boolean committed = false;
+            try {
+                try (PreparedStatement pStatement = prepareStatement(lockTableQueryTemplate, permit)) {
+                    pStatement.execute();
+                }
+                R result = operation.run();
+                if (autoCommit) {
+                    connection.commit();
+                }
+                committed = true;
+                if (autoCommit && onCommit != null) {
+                    onCommit.committed(result);
+                }
+                return result;
+            } finally {
+                if (autoCommit) {
+                    try {
+                        if (!committed) {
+                            connection.rollback();
+                        }
+                    } finally {
+                        connection.setAutoCommit(true);
+                    }
+                }
+            }
+        }
+    }
+
+    private interface WriteOperation<R> {
+        R run() throws SQLException, IllegalAccessException;
+    }
+
+    private interface CommitListener<R> {
+        void committed(R result) throws IllegalAccessException;
+    }
+
+    /**
+     * @return locked lock of given key or null if dirty checking is disabled.
+     */
+    private Lock lockKey(T key, AdmissionLimiter.Permit permit, boolean write)
+            throws IllegalAccessException, SQLException {
+        if (keyLocks == null) {
+            return null;
+        }
+        ReadWriteLock readWriteLock = keyLocks.get(getKeyValues(key));
+        Lock lock = write ? readWriteLock.writeLock() : readWriteLock.readLock();
+        permit.lock(lock);
+        return lock;
+    }
+
+    private void unlock(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    private boolean isUnchanged(T object, byte[] bytes) throws IllegalAccessException {
+        if (fingerprints == null) {
+            return false;
+        }
+        HashCode fingerprint = fingerprints.getIfPresent(getKeyValues(object));
+        return fingerprint != null && fingerprint.equals(FINGERPRINT_FUNCTION.hashBytes(bytes));
+    }
+
+    private void rememberFingerprint(T key, byte[] bytes) throws IllegalAccessException {
+        if (fingerprints != null) {
+            fingerprints.put(getKeyValues(key), FINGERPRINT_FUNCTION.hashBytes(bytes));
+        }
+    }
+
+    private void forgetFingerprint(T key) throws IllegalAccessException {
+        if (fingerprints != null) {
+            fingerprints.invalidate(getKeyValues(key));
         }
     }
 
+    private List<Object> getKeyValues(T key) throws IllegalAccessException {
+        List<Object> values = new ArrayList<>(indexedFields.size());
+        for (Field field : indexedFields) {
+            values.add(field.get(key));
+        }
+        return values;
+    }
+
     private void insertKeyValues(PreparedStatement pStatement, T key, int from) throws IllegalAccessException,
             SQLException{
         int i = from;
@@ -171,6 +634,9 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
         } else {
             tableName = UPPER_CAMEL.to(LOWER_UNDERSCORE, clazz.getName());
         }
+        tombstonesTableName = tableName + TOMBSTONES_TABLE_SUFFIX;
+        sequenceName = tableName + SEQUENCE_SUFFIX;
+        versioned = entity.versioned();
     }
 
     /**
@@ -199,17 +665,108 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
         }
     }
 
+    /**
+     * Every step here checks what already exists on its own, so if registration
+     * failed half way (or table was created before the feature), next register
+     * creates what is missing.
+     */
     private void createTable() throws SQLException {
-        try (ResultSet tables = connection.getMetaData().getTables(null, null, tableName.toUpperCase(),
+        createTableIfNotExists(tableName, createQueryTemplate);
+        createIndexIfNotExists(tableName, KEY_INDEX_SUFFIX, makeKeyColumnList());
+        if (versioned) {
+            checkRowVersionColumn();
+            createIndexIfNotExists(tableName, "_" + ROW_VERSION_COLUMN, ROW_VERSION_COLUMN);
+
+            createTableIfNotExists(tombstonesTableName, createTombstonesQueryTemplate);
+            createIndexIfNotExists(tombstonesTableName, KEY_INDEX_SUFFIX, makeKeyColumnList());
+            createIndexIfNotExists(tombstonesTableName, "_" + ROW_VERSION_COLUMN, ROW_VERSION_COLUMN);
+
+            createSequenceIfNotExists();
+        }
+    }
+
+    /**
+     * Table of a versioned class may already exist without
+     * {@link ReflectionJdbcDaoImpl#ROW_VERSION_COLUMN} if it was created before
+     * the class became versioned. Existing tables are not altered, so fail early.
+     *
+     * @throws IllegalArgumentException if there is no such column
+     */
+    private void checkRowVersionColumn() throws IllegalArgumentException, SQLException {
+        try (ResultSet columns = connection.getMetaData().getColumns(null, null, tableName.toUpperCase(),
+                ROW_VERSION_COLUMN.toUpperCase())) {
+            if (!columns.next()) {
+                throw new IllegalArgumentException("class '" + clazz.getName() + "' is versioned but table " +
+                        tableName + " does not have " + ROW_VERSION_COLUMN + " column");
+            }
+        }
+    }
+
+    /**
+     * Creates {@link ReflectionJdbcDaoImpl#sequenceName} if it is missing.
+     * It starts after the greatest version already stored, so versions never go back.
+     */
+    private void createSequenceIfNotExists() throws SQLException {
+        try (PreparedStatement pStatement = connection.prepareStatement(selectSequenceQueryTemplate)) {
+            pStatement.setString(1, sequenceName.toUpperCase());
+            try (ResultSet resultSet = pStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return;
+                }
+            }
+        }
+
+        long maxVersion = 0;
+        for (String table : new String[] {tableName, tombstonesTableName}) {
+            try (PreparedStatement pStatement = connection.prepareStatement("SELECT MAX(" + ROW_VERSION_COLUMN +
+                    ") FROM " + table);
+                 ResultSet resultSet = pStatement.executeQuery()) {
+                resultSet.next();
+                maxVersion = Math.max(maxVersion, resultSet.getLong(1));
+            }
+        }
+
+        try (PreparedStatement pStatement = connection.prepareStatement(createSequenceQueryTemplate +
+                (maxVersion + 1))) {
+            pStatement.execute();
+        }
+    }
+
+    private void createTableIfNotExists(String name, String query) throws SQLException {
+        try (ResultSet tables = connection.getMetaData().getTables(null, null, name.toUpperCase(),
                 new String[] {"TABLE"})) {
             if (!tables.next()) {
-                try (PreparedStatement pStatement = connection.prepareStatement(createQueryTemplate)) {
+                try (PreparedStatement pStatement = connection.prepareStatement(query)) {
                     pStatement.execute();
                 }
             }
         }
     }
 
+    /**
+     * Index on all @Index columns lets key-only queries (existsByKey, selectAllKeys)
+     * be answered from the index without reading table rows, and index on
+     * {@link ReflectionJdbcDaoImpl#ROW_VERSION_COLUMN} lets reading changes
+     * not scan the whole table. Tables created before the index was introduced
+     * get it here as well.
+     */
+    private void createIndexIfNotExists(String name, String suffix, String columns) throws SQLException {
+        String indexName = name + suffix;
+        try (ResultSet indexes = connection.getMetaData().getIndexInfo(null, null, name.toUpperCase(),
+                false, true)) {
+            while (indexes.next()) {
+                if (indexName.equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+                    return;
+                }
+            }
+        }
+
+        try (PreparedStatement pStatement = connection.prepareStatement("CREATE INDEX " + indexName +
+                " ON " + name + " (" + columns + ")")) {
+            pStatement.execute();
+        }
+    }
+
     private void formQueryTemplates() {
         formCreateQueryTemplate();
         formInsertQueryTemplate();
@@ -217,6 +774,18 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
         formDeleteQueryTemplate();
         formSelectQueryTemplate();
         formSelectAllQueryTemplate();
+        formExistsQueryTemplate();
+        formCountQueryTemplate();
+        formSelectAllKeysQueryTemplate();
+        if (versioned) {
+            formCreateTombstonesQueryTemplate();
+            formInsertTombstoneQueryTemplate();
+            formDeleteTombstoneQueryTemplate();
+            formSelectChangedSinceQueryTemplate();
+            formCreateSequenceQueryTemplate();
+            formSelectSequenceQueryTemplate();
+            formLockTableQueryTemplate();
+        }
     }
 
     /**
@@ -231,18 +800,38 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
      * )
      *
      * Where object_itself will be serialized object which user asked us to store.
+     * For versioned classes additional column `row_version BIGINT` goes last.
      */
     private void formCreateQueryTemplate() {
-        StringBuilder queryBuilder = new StringBuilder("CREATE TABLE " + tableName + " (\n");
+        createQueryTemplate = makeCreateStatement(tableName);
+    }
+
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#createTombstonesQueryTemplate}
+     * the same way as {@link ReflectionJdbcDaoImpl#createQueryTemplate} but for
+     * {@link ReflectionJdbcDaoImpl#tombstonesTableName}.
+     *
+     * Here object_itself will be serialized key which was passed to deleteByKey.
+     */
+    private void formCreateTombstonesQueryTemplate() {
+        createTombstonesQueryTemplate = makeCreateStatement(tombstonesTableName);
+    }
+
+    private String makeCreateStatement(String name) {
+        StringBuilder queryBuilder = new StringBuilder("CREATE TABLE " + name + " (\n");
         String tableColumn;
 
         for (Field field : indexedFields) {
-            tableColumn = LOWER_CAMEL.to(LOWER_UNDERSCORE, field.getName()) + " " +
+            tableColumn = getColumnName(field) + " " +
                     getFieldSQLType(field) + ",\n";
             queryBuilder.append(tableColumn);
         }
 
-        createQueryTemplate = queryBuilder.toString() + OBJECT_ITSELF_COLUMN + " BLOB\n)";
+        if (versioned) {
+            queryBuilder.append(OBJECT_ITSELF_COLUMN + " BLOB,\n");
+            return queryBuilder.toString() + ROW_VERSION_COLUMN + " BIGINT\n)";
+        }
+        return queryBuilder.toString() + OBJECT_ITSELF_COLUMN + " BLOB\n)";
     }
 
     /**
@@ -278,15 +867,33 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
      *
      * Where amount of '?' is equal to size of {@link ReflectionJdbcDaoImpl#indexedFields} plus one.
      * (this one additional is for `object_itself` column)
+     * For versioned classes `row_version` column gets `NEXT VALUE FOR {@link ReflectionJdbcDaoImpl#sequenceName}`.
      */
     private void formInsertQueryTemplate() {
-        StringBuilder queryBuilder = new StringBuilder("INSERT INTO " + tableName + "\nVALUES (");
+        insertQueryTemplate = makeInsertStatement(tableName);
+    }
+
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#insertTombstoneQueryTemplate}
+     * the same way as {@link ReflectionJdbcDaoImpl#insertQueryTemplate} but for
+     * {@link ReflectionJdbcDaoImpl#tombstonesTableName}.
+     */
+    private void formInsertTombstoneQueryTemplate() {
+        insertTombstoneQueryTemplate = makeInsertStatement(tombstonesTableName);
+    }
+
+    private String makeInsertStatement(String name) {
+        StringBuilder queryBuilder = new StringBuilder("INSERT INTO " + name + "\nVALUES (");
 
         for (int i = 0; i < indexedFields.size(); i++) {
             queryBuilder.append("?, ");
         }
 
-        insertQueryTemplate = queryBuilder.toString() + "?)";
+        if (versioned) {
+            return queryBuilder.toString() + "?, NEXT VALUE FOR " + sequenceName + ")";
+        }
+
+        return queryBuilder.toString() + "?)";
     }
 
     /**
@@ -295,13 +902,50 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
      * UPDATE {@link ReflectionJdbcDaoImpl#tableName}
      * SET {@link ReflectionJdbcDaoImpl#OBJECT_ITSELF_COLUMN}=?
      * WHERE first_indexed_field=? AND second_indexed_field=? AND ... AND last_indexed_field=?
+     *
+     * For versioned classes `, row_version=NEXT VALUE FOR {@link ReflectionJdbcDaoImpl#sequenceName}`
+     * is added to SET.
      */
     private void formUpdateQueryTemplate() {
         updateQueryTemplate = "UPDATE " + tableName + "\n" +
-                "SET " + OBJECT_ITSELF_COLUMN + "=?\n" +
+                "SET " + OBJECT_ITSELF_COLUMN + "=?" +
+                (versioned ? ", " + ROW_VERSION_COLUMN + "=NEXT VALUE FOR " + sequenceName : "") + "\n" +
                 makeWhereStatement();
     }
 
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#createSequenceQueryTemplate} like this:
+     *
+     * CREATE SEQUENCE {@link ReflectionJdbcDaoImpl#sequenceName} AS BIGINT START WITH
+     *
+     * Where the first value is appended when the sequence is created.
+     * Versions of all DAOs working with the table are taken from this sequence.
+     */
+    private void formCreateSequenceQueryTemplate() {
+        createSequenceQueryTemplate = "CREATE SEQUENCE " + sequenceName + " AS BIGINT START WITH ";
+    }
+
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#selectSequenceQueryTemplate} like this:
+     *
+     * SELECT s.SEQUENCENAME FROM SYS.SYSSEQUENCES s JOIN SYS.SYSSCHEMAS c ON s.SCHEMAID = c.SCHEMAID
+     * WHERE s.SEQUENCENAME = ? AND c.SCHEMANAME = CURRENT SCHEMA
+     */
+    private void formSelectSequenceQueryTemplate() {
+        selectSequenceQueryTemplate = "SELECT s.SEQUENCENAME FROM SYS.SYSSEQUENCES s " +
+                "JOIN SYS.SYSSCHEMAS c ON s.SCHEMAID = c.SCHEMAID\n" +
+                "WHERE s.SEQUENCENAME = ? AND c.SCHEMANAME = CURRENT SCHEMA";
+    }
+
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#lockTableQueryTemplate} like this:
+     *
+     * LOCK TABLE {@link ReflectionJdbcDaoImpl#tableName} IN EXCLUSIVE MODE
+     */
+    private void formLockTableQueryTemplate() {
+        lockTableQueryTemplate = "LOCK TABLE " + tableName + " IN EXCLUSIVE MODE";
+    }
+
     /**
      * This method will form {@link ReflectionJdbcDaoImpl#deleteQueryTemplate} like this:
      *
@@ -333,12 +977,96 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
         selectAllQueryTemplate = "SELECT " + OBJECT_ITSELF_COLUMN + " FROM " + tableName;
     }
 
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#existsQueryTemplate} like this:
+     *
+     * SELECT first_indexed_field FROM {@link ReflectionJdbcDaoImpl#tableName}
+     * WHERE first_indexed_field=? AND ... AND last_indexed_field=?
+     */
+    private void formExistsQueryTemplate() {
+        existsQueryTemplate = "SELECT " + getColumnName(indexedFields.get(0)) + " FROM " + tableName + "\n" +
+                makeWhereStatement();
+    }
+
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#countQueryTemplate} like this:
+     *
+     * SELECT COUNT(*) FROM {@link ReflectionJdbcDaoImpl#tableName}
+     */
+    private void formCountQueryTemplate() {
+        countQueryTemplate = "SELECT COUNT(*) FROM " + tableName;
+    }
+
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#selectAllKeysQueryTemplate} like this:
+     *
+     * SELECT first_indexed_field, ..., last_indexed_field FROM {@link ReflectionJdbcDaoImpl#tableName}
+     */
+    private void formSelectAllKeysQueryTemplate() {
+        selectAllKeysQueryTemplate = "SELECT " + makeKeyColumnList() + " FROM " + tableName;
+    }
+
+    /**
+     * @return first_indexed_field, ..., last_indexed_field
+     */
+    private String makeKeyColumnList() {
+        StringBuilder res = new StringBuilder();
+        boolean needComma = false;
+
+        for (Field field : indexedFields) {
+            if (needComma) {
+                res.append(", ");
+            }
+            res.append(getColumnName(field));
+            needComma = true;
+        }
+
+        return res.toString();
+    }
+
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#deleteTombstoneQueryTemplate} like this:
+     *
+     * DELETE FROM {@link ReflectionJdbcDaoImpl#tombstonesTableName}
+     * WHERE first_indexed_field=? AND second_indexed_field=? AND ... AND last_indexed_field=?
+     */
+    private void formDeleteTombstoneQueryTemplate() {
+        deleteTombstoneQueryTemplate = "DELETE FROM " + tombstonesTableName + "\n" +
+                makeWhereStatement();
+    }
+
+    /**
+     * This method will form {@link ReflectionJdbcDaoImpl#selectChangedSinceQueryTemplate} like this:
+     *
+     * SELECT row_version, object_itself, 0 FROM {@link ReflectionJdbcDaoImpl#tableName}
+     * WHERE row_version > ?
+     * UNION ALL
+     * SELECT row_version, object_itself, 1 FROM {@link ReflectionJdbcDaoImpl#tombstonesTableName}
+     * WHERE row_version > ?
+     * ORDER BY 1
+     *
+     * Where the last column tells whether the row is a tombstone.
+     */
+    private void formSelectChangedSinceQueryTemplate() {
+        selectChangedSinceQueryTemplate =
+                "SELECT " + ROW_VERSION_COLUMN + ", " + OBJECT_ITSELF_COLUMN + ", 0 FROM " + tableName + "\n" +
+                "WHERE " + ROW_VERSION_COLUMN + " > ?\n" +
+                "UNION ALL\n" +
+                "SELECT " + ROW_VERSION_COLUMN + ", " + OBJECT_ITSELF_COLUMN + ", 1 FROM " + tombstonesTableName + "\n" +
+                "WHERE " + ROW_VERSION_COLUMN + " > ?\n" +
+                "ORDER BY 1";
+    }
+
+    private String getColumnName(Field field) {
+        return LOWER_CAMEL.to(LOWER_UNDERSCORE, field.getName());
+    }
+
     private String makeWhereStatement() {
         StringBuilder res = new StringBuilder("WHERE ");
         boolean needComma = false;
 
         for (Field field : indexedFields) {
-            String condition = LOWER_CAMEL.to(LOWER_UNDERSCORE, field.getName()) + "=?";
+            String condition = getColumnName(field) + "=?";
             if (needComma) {
                 res.append(" AND ");
             }
@@ -363,4 +1091,11 @@ public class ReflectionJdbcDaoImpl<T> implements ReflectionJdbcDao<T> {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private T deserializeObject(byte[] bytes) throws IOException, ClassNotFoundException {
+        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+        ObjectInputStream ois = new ObjectInputStream(bais);
+        return (T) ois.readObject();
+    }
+
 }
\ No newline at end of file
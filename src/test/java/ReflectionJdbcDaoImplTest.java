@@ -5,7 +5,15 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -163,6 +171,449 @@ public class ReflectionJdbcDaoImplTest {
         }
     }
 
+    @Test
+    public void testExistsByKey() throws Exception {
+        ReflectionJdbcDao<TestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        TestObject obj = new TestObject("Petya", "Petrov", "Russia", 30);
+        TestObject key = new TestObject("Petya", "Petrov", "", 0);
+        TestObject missingKey = new TestObject("Petya", "Sidorov", "", 0);
+
+        dao.insert(obj);
+
+        assertTrue(dao.existsByKey(key));
+        assertFalse(dao.existsByKey(missingKey));
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        ReflectionJdbcDao<TestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        truncateTable("test_object");
+        assertEquals(0, dao.count());
+
+        final int n = 10;
+        for (int i = 0; i < n; i++) {
+            dao.insert(new TestObject("" + i, "" + i, "" + i, i));
+        }
+
+        assertEquals(n, dao.count());
+    }
+
+    @Test
+    public void testSelectAllKeys() throws Exception {
+        ReflectionJdbcDao<TestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        truncateTable("test_object");
+
+        final int n = 100;
+        boolean was[] = new boolean[n];
+
+        for (int i = 0; i < n; i++) {
+            dao.insert(new TestObject("" + i, "" + (i + n), "" + i, i));
+        }
+
+        try (Stream<List<Object>> keys = dao.selectAllKeys()) {
+            keys.forEach(key -> {
+                assertEquals(2, key.size());
+                int i = Integer.parseInt((String) key.get(0));
+                assertEquals("" + (i + n), key.get(1));
+                was[i] = true;
+            });
+        }
+
+        for (int i = 0; i < n; i++) {
+            assertEquals(true, was[i]);
+        }
+
+        ReflectionJdbcDao<AnotherTestObject> anotherDao = new ReflectionJdbcDaoImpl<>(connection);
+        anotherDao.register(AnotherTestObject.class);
+        anotherDao.insert(new AnotherTestObject("Keys", 9, 10, 11L, 12L));
+
+        try (Stream<List<Object>> keys = anotherDao.selectAllKeys()) {
+            assertTrue(keys.anyMatch(key -> key.equals(Arrays.asList("Keys", 9, 10, 11L, 12L))));
+        }
+    }
+
+    @Test
+    public void testKeyIndexCreatedForExistingTable() throws Exception {
+        ReflectionJdbcDao<TestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        try (PreparedStatement pStatement = connection.prepareStatement("DROP INDEX test_object_key")) {
+            pStatement.execute();
+        }
+        assertFalse(hasIndex("TEST_OBJECT", "TEST_OBJECT_KEY"));
+
+        dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        assertTrue(hasIndex("TEST_OBJECT", "TEST_OBJECT_KEY"));
+    }
+
+    @Test
+    public void testSelectChangedSince() throws Exception {
+        ReflectionJdbcDao<VersionedTestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(VersionedTestObject.class);
+
+        VersionedTestObject obj1 = new VersionedTestObject(1, "first");
+        VersionedTestObject obj2 = new VersionedTestObject(2, "second");
+
+        dao.insert(obj1);
+        dao.insert(obj2);
+
+        List<Change<VersionedTestObject>> changes;
+        try (Stream<Change<VersionedTestObject>> stream = dao.selectChangedSince(0)) {
+            changes = stream.collect(Collectors.toList());
+        }
+
+        assertEquals(2, changes.size());
+        assertEquals(1, changes.get(0).getObject().id);
+        assertEquals(2, changes.get(1).getObject().id);
+        assertTrue(changes.get(0).getVersion() < changes.get(1).getVersion());
+
+        long lastSeen = changes.get(1).getVersion();
+
+        obj1.info = "updated";
+        dao.update(obj1);
+        dao.deleteByKey(new VersionedTestObject(2, null));
+        dao.deleteByKey(new VersionedTestObject(3, null));
+
+        try (Stream<Change<VersionedTestObject>> stream = dao.selectChangedSince(lastSeen)) {
+            changes = stream.collect(Collectors.toList());
+        }
+
+        assertEquals(2, changes.size());
+        assertEquals("updated", changes.get(0).getObject().info);
+        assertFalse(changes.get(0).isDeleted());
+        assertEquals(2, changes.get(1).getObject().id);
+        assertTrue(changes.get(1).isDeleted());
+
+        ReflectionJdbcDao<VersionedTestObject> anotherDao = new ReflectionJdbcDaoImpl<>(connection);
+        anotherDao.register(VersionedTestObject.class);
+        anotherDao.insert(obj2);
+
+        try (Stream<Change<VersionedTestObject>> stream = anotherDao.selectChangedSince(lastSeen)) {
+            changes = stream.collect(Collectors.toList());
+        }
+
+        assertEquals(3, changes.size());
+        assertTrue(changes.get(1).getVersion() < changes.get(2).getVersion());
+        assertFalse(changes.get(2).isDeleted());
+
+        dao.insert(new VersionedTestObject(4, "from first dao"));
+        anotherDao.insert(new VersionedTestObject(5, "from another dao"));
+
+        try (Stream<Change<VersionedTestObject>> stream = dao.selectChangedSince(changes.get(2).getVersion())) {
+            changes = stream.collect(Collectors.toList());
+        }
+
+        assertEquals(2, changes.size());
+        assertEquals(4, changes.get(0).getObject().id);
+        assertEquals(5, changes.get(1).getObject().id);
+        assertTrue(changes.get(0).getVersion() < changes.get(1).getVersion());
+        assertTrue(connection.getAutoCommit());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSelectChangedSinceNotVersioned() throws Exception {
+        ReflectionJdbcDao<TestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        dao.selectChangedSince(0);
+    }
+
+    @Test
+    public void testSequenceRecreatedOnRegister() throws Exception {
+        ReflectionJdbcDao<VersionedTestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(VersionedTestObject.class);
+        dao.insert(new VersionedTestObject(100, "before"));
+
+        long lastVersion;
+        try (Stream<Change<VersionedTestObject>> stream = dao.selectChangedSince(0)) {
+            lastVersion = stream.mapToLong(Change::getVersion).max().getAsLong();
+        }
+
+        try (PreparedStatement pStatement = connection.prepareStatement(
+                "DROP SEQUENCE versioned_test_object_seq RESTRICT")) {
+            pStatement.execute();
+        }
+
+        dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(VersionedTestObject.class);
+        dao.insert(new VersionedTestObject(101, "after"));
+
+        try (Stream<Change<VersionedTestObject>> stream = dao.selectChangedSince(lastVersion)) {
+            List<Change<VersionedTestObject>> changes = stream.collect(Collectors.toList());
+            assertEquals(1, changes.size());
+            assertEquals(101, changes.get(0).getObject().id);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterVersionedOnTableWithoutVersionColumn() throws Exception {
+        try (PreparedStatement pStatement = connection.prepareStatement(
+                "CREATE TABLE unversioned_table (id INTEGER, object_itself BLOB)")) {
+            pStatement.execute();
+        }
+
+        ReflectionJdbcDao<UnversionedTableTestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(UnversionedTableTestObject.class);
+    }
+
+    @Test
+    public void testDirtyChecking() throws Exception {
+        ReflectionJdbcDaoImpl<AnotherTestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(AnotherTestObject.class);
+        dao.enableDirtyChecking(100);
+
+        AnotherTestObject obj = new AnotherTestObject("Dirty", 5, 6, 7L, 8L);
+        AnotherTestObject key = new AnotherTestObject("Dirty", 5, 6, 7L, 8L);
+        obj.innerInfo = "Info";
+
+        dao.insert(obj);
+        dao.update(obj);
+        assertEquals(1, dao.getSkippedUpdatesCount());
+
+        obj.innerInfo = "Changed info";
+        dao.update(obj);
+        assertEquals(1, dao.getSkippedUpdatesCount());
+        assertEquals("Changed info", dao.selectByKey(key).innerInfo);
+
+        ReflectionJdbcDaoImpl<AnotherTestObject> anotherDao = new ReflectionJdbcDaoImpl<>(connection);
+        anotherDao.register(AnotherTestObject.class);
+        anotherDao.enableDirtyChecking(100);
+
+        AnotherTestObject loaded = anotherDao.selectByKey(key);
+        anotherDao.update(loaded);
+        assertEquals(1, anotherDao.getSkippedUpdatesCount());
+
+        loaded.innerInfo = "Info from another dao";
+        anotherDao.update(loaded);
+        assertEquals(1, anotherDao.getSkippedUpdatesCount());
+        assertEquals("Info from another dao", dao.selectByKey(key).innerInfo);
+    }
+
+    @Test
+    public void testDirtyCheckingRolledBackUpdate() throws Exception {
+        ReflectionJdbcDaoImpl<AnotherTestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(AnotherTestObject.class);
+        dao.enableDirtyChecking(100);
+
+        ReflectionJdbcDao<AnotherTestObject> plainDao = new ReflectionJdbcDaoImpl<>(connection);
+        plainDao.register(AnotherTestObject.class);
+
+        AnotherTestObject obj = new AnotherTestObject("Rollback", 2, 3, 4L, 5L);
+        AnotherTestObject key = new AnotherTestObject("Rollback", 2, 3, 4L, 5L);
+        obj.innerInfo = "committed";
+        dao.insert(obj);
+
+        obj.innerInfo = "rolled back";
+        connection.setAutoCommit(false);
+        try {
+            dao.update(obj);
+            assertEquals("rolled back", plainDao.selectByKey(key).innerInfo);
+            connection.rollback();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        assertEquals("committed", plainDao.selectByKey(key).innerInfo);
+
+        obj.innerInfo = "rolled back";
+        dao.update(obj);
+
+        assertEquals(0, dao.getSkippedUpdatesCount());
+        assertEquals("rolled back", plainDao.selectByKey(key).innerInfo);
+    }
+
+    @Test
+    public void testDirtyCheckingConcurrentUpdates() throws Exception {
+        ReflectionJdbcDaoImpl<AnotherTestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(AnotherTestObject.class);
+        dao.enableDirtyChecking(100);
+
+        ReflectionJdbcDao<AnotherTestObject> plainDao = new ReflectionJdbcDaoImpl<>(connection);
+        plainDao.register(AnotherTestObject.class);
+
+        AnotherTestObject key = new AnotherTestObject("Race", 1, 1, 1L, 1L);
+        key.innerInfo = "a";
+        dao.insert(key);
+
+        final int threads = 4;
+        final int iterations = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < iterations; i++) {
+                    if ((i + seed) % 3 == 0) {
+                        dao.selectByKey(key);
+                    } else {
+                        AnotherTestObject obj = new AnotherTestObject("Race", 1, 1, 1L, 1L);
+                        obj.innerInfo = (i + seed) % 2 == 0 ? "a" : "b";
+                        dao.update(obj);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        String inDb = plainDao.selectByKey(key).innerInfo;
+        AnotherTestObject obj = new AnotherTestObject("Race", 1, 1, 1L, 1L);
+        obj.innerInfo = inDb.equals("a") ? "b" : "a";
+        dao.update(obj);
+
+        assertEquals(obj.innerInfo, plainDao.selectByKey(key).innerInfo);
+    }
+
+    @Test
+    public void testAdmissionLimiter() throws Exception {
+        ReflectionJdbcDaoImpl<TestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        AdmissionLimiter readLimiter = new AdmissionLimiter(1, 0, 0, 5);
+        dao.setReadLimiter(readLimiter);
+        dao.setWriteLimiter(new AdmissionLimiter(1, 1, 100, 5));
+
+        dao.insert(new TestObject("Limited", "Limited", "", 0));
+
+        try (Stream<List<Object>> keys = dao.selectAllKeys()) {
+            try {
+                dao.count();
+                fail("read should be rejected while stream holds the only slot");
+            } catch (SQLTransientException e) {
+                assertEquals(1, readLimiter.getRejectedCount());
+            }
+
+            dao.insert(new TestObject("Limited", "Writer", "", 0));
+        }
+
+        assertTrue(dao.existsByKey(new TestObject("Limited", "Writer", "", 0)));
+        assertEquals(1, readLimiter.getRejectedCount());
+    }
+
+    @Test
+    public void testAdmissionLimiterQueue() throws Exception {
+        ReflectionJdbcDaoImpl<TestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        AdmissionLimiter readLimiter = new AdmissionLimiter(1, 1, 5000, 0);
+        dao.setReadLimiter(readLimiter);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> holder = holdReadSlot(executor, dao, held, release);
+        held.await();
+
+        Future<Long> waiter = executor.submit(dao::count);
+        while (readLimiter.getQueuedCount() == 0) {
+            Thread.sleep(10);
+        }
+
+        try {
+            dao.count();
+            fail("read should be rejected while queue is full");
+        } catch (SQLTransientException e) {
+            assertEquals(1, readLimiter.getRejectedCount());
+        }
+
+        assertFalse(waiter.isDone());
+        release.countDown();
+        holder.get();
+        waiter.get();
+
+        assertEquals(1, readLimiter.getRejectedCount());
+        assertEquals(0, readLimiter.getQueuedCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testAdmissionLimiterTimeouts() throws Exception {
+        ReflectionJdbcDaoImpl<TestObject> dao = new ReflectionJdbcDaoImpl<>(connection);
+        dao.register(TestObject.class);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        AdmissionLimiter shortWaitLimiter = new AdmissionLimiter(1, 1, 200, 0);
+        dao.setReadLimiter(shortWaitLimiter);
+
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> holder = holdReadSlot(executor, dao, held, release);
+        held.await();
+
+        long start = System.nanoTime();
+        try {
+            dao.count();
+            fail("read should be rejected after waiting in queue");
+        } catch (SQLTransientException e) {
+            assertFalse(e instanceof SQLTimeoutException);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+            assertEquals(1, shortWaitLimiter.getRejectedCount());
+        }
+        release.countDown();
+        holder.get();
+
+        AdmissionLimiter deadlineLimiter = new AdmissionLimiter(1, 1, 5000, 1);
+        dao.setReadLimiter(deadlineLimiter);
+
+        held = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        holder = holdReadSlot(executor, dao, held, release);
+        held.await();
+
+        CountDownLatch finalRelease = release;
+        new Thread(() -> {
+            try {
+                Thread.sleep(1500);
+            } catch (InterruptedException ignored) {
+            }
+            finalRelease.countDown();
+        }).start();
+
+        try {
+            dao.count();
+            fail("time spent in queue should count against the operation deadline");
+        } catch (SQLTimeoutException e) {
+            assertEquals(0, deadlineLimiter.getRejectedCount());
+        }
+        holder.get();
+
+        AdmissionLimiter.Permit permit = new AdmissionLimiter(1, 0, 0, 5).acquire();
+        int queryTimeout = permit.getQueryTimeoutSeconds();
+        assertTrue(queryTimeout >= 1 && queryTimeout <= 5);
+        permit.release();
+
+        permit = AdmissionLimiter.UNLIMITED.acquire();
+        assertEquals(0, permit.getQueryTimeoutSeconds());
+        permit.release();
+
+        executor.shutdown();
+    }
+
+    /**
+     * Opens a stream in another thread, so it holds a read slot of dao until release is counted down.
+     */
+    private static Future<?> holdReadSlot(ExecutorService executor, ReflectionJdbcDao<TestObject> dao,
+                                          CountDownLatch held, CountDownLatch release) {
+        return executor.submit(() -> {
+            try (Stream<List<Object>> keys = dao.selectAllKeys()) {
+                held.countDown();
+                release.await();
+            }
+            return null;
+        });
+    }
+
     /**
      * this method deletes testdb folder and derby.log file.
      */
@@ -195,6 +646,17 @@ public class ReflectionJdbcDaoImplTest {
         }
     }
 
+    private static boolean hasIndex(String tableName, String indexName) throws SQLException {
+        try (ResultSet indexes = connection.getMetaData().getIndexInfo(null, null, tableName, false, true)) {
+            while (indexes.next()) {
+                if (indexName.equals(indexes.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Use this method if your test need clean table
      * (i.e. if you need to check sizes of this table)
@@ -0,0 +1,10 @@
+import java.io.Serializable;
+
+/**
+ * Versioned test object whose table is created in test without row_version column.
+ */
+
+@Entity(tableName = "unversioned_table", versioned = true)
+public class UnversionedTableTestObject implements Serializable {
+    @Index public int id;
+}
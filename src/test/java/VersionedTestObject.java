@@ -0,0 +1,17 @@
+import java.io.Serializable;
+
+/**
+ * Test object for change feed.
+ */
+
+@Entity(versioned = true)
+public class VersionedTestObject implements Serializable {
+    @Index public int id;
+
+    public String info;
+
+    public VersionedTestObject(int id, String info) {
+        this.id = id;
+        this.info = info;
+    }
+}